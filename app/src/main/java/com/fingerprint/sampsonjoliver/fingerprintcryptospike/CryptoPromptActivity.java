@@ -0,0 +1,88 @@
+package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+/**
+ * A transparent activity which hosts the scan dialog for decrypts queued by {@link CryptoService},
+ * working through the queue with the one reused dialog and finishing once it is empty.
+ */
+public class CryptoPromptActivity extends Activity implements FingerprintUtils.ICryptoAuthListener, FingerprintUtils.ICryptoCancelListener {
+    private FingerprintUtils fingerprintUtils;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        fingerprintUtils = FingerprintUtils.getInstance(this);
+
+        // A recreated activity picks the retained dialog back up, so only start on first creation.
+        // Restored after the process died, the queue is empty and there is no dialog to pick up.
+        if (savedInstanceState == null || CryptoService.nextPromptAlias() == null) {
+            promptNext();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            CryptoService.onPromptFinished();
+        }
+    }
+
+    private void promptNext() {
+        String alias;
+        while ((alias = CryptoService.nextPromptAlias()) != null) {
+            if (!fingerprintUtils.hasPermissionsGranted() || !fingerprintUtils.isFingerprintAuthAvailable()) {
+                // Nothing can be scanned, so there is no point holding the rest of the queue either
+                CryptoService.cancelPrompts();
+                break;
+            }
+
+            if (!CryptoUtils.hasKey(alias)) {
+                // Deleted or purged since the decrypt was queued
+                CryptoService.completePrompt(CryptoService.STATUS_NO_KEY, null);
+                continue;
+            }
+
+            try {
+                fingerprintUtils.decrypt(getFragmentManager(), alias, this);
+                return;
+            } catch (RuntimeException e) {
+                // The key or its record could not be read, so this decrypt can never succeed
+                e.printStackTrace();
+                CryptoService.completePrompt(CryptoService.STATUS_FAILED, null);
+            }
+        }
+        finish();
+    }
+
+    @Override
+    public void onEncrypted(String cryptoResult) {
+        // Only decrypts are ever prompted for
+    }
+
+    @Override
+    public void onDecrypted(String cryptoResult) {
+        CryptoService.completePrompt(CryptoService.STATUS_OK, cryptoResult);
+        promptNext();
+    }
+
+    @Override
+    public void onFailure() {
+        CryptoService.completePrompt(CryptoService.STATUS_FAILED, null);
+        promptNext();
+    }
+
+    @Override
+    public void onKeystoreInvalidated() {
+        CryptoService.completePrompt(CryptoService.STATUS_INVALIDATED, null);
+        promptNext();
+    }
+
+    @Override
+    public void onCancelled() {
+        CryptoService.cancelPrompts();
+        finish();
+    }
+}
@@ -0,0 +1,391 @@
+package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
+
+import android.app.Service;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * A bound service exposing encrypt, decrypt, hasKey and list to other processes of the app, such as
+ * sync, autofill or widgets, so they need not go through an activity.
+ * <p>
+ * Clients send a single {@link #MSG_BATCH} message holding any number of requests built with
+ * {@link #encryptRequest}, {@link #decryptRequest}, {@link #hasKeyRequest} and {@link #listRequest},
+ * and receive a single reply holding a result for each request, in order. The service keeps one
+ * loaded keystore for all clients, so hasKey and list never touch a fingerprint. Encrypt needs no
+ * scan either, as the entry is encrypted in software under a fresh key which is then imported into
+ * the keystore, so it only ever creates new entries and is refused for an alias which already has
+ * one. Decrypt needs one scan per alias, as every key requires its own authentication;
+ * these are queued across all clients and shown back-to-back through one {@link CryptoPromptActivity}.
+ * Dismissing that prompt cancels every decrypt still waiting on it.
+ * <p>
+ * Batches are handled on a background thread, as encrypts and the keystore do disk work. The
+ * prompt queue is shared with the prompt activity on the main thread, so is only touched while
+ * holding the class lock.
+ */
+public class CryptoService extends Service {
+    public static final int MSG_BATCH = 1;
+    public static final int MSG_BATCH_RESULT = 2;
+
+    public static final int OP_ENCRYPT = 1;
+    public static final int OP_DECRYPT = 2;
+    public static final int OP_HAS_KEY = 3;
+    public static final int OP_LIST = 4;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_FAILED = 1;
+    public static final int STATUS_INVALIDATED = 2;
+    public static final int STATUS_NO_KEY = 3;
+    public static final int STATUS_CANCELLED = 4;
+    /**
+     * Encrypt was refused as the alias already holds an entry, which would otherwise be replaced
+     * without a scan
+     */
+    public static final int STATUS_EXISTS = 5;
+
+    public static final String EXTRA_REQUESTS = "requests";
+    public static final String EXTRA_RESULTS = "results";
+    public static final String EXTRA_OP = "op";
+    public static final String EXTRA_ALIAS = "alias";
+    public static final String EXTRA_DATA = "data";
+    public static final String EXTRA_STATUS = "status";
+    public static final String EXTRA_HAS_KEY = "hasKey";
+    public static final String EXTRA_ALIASES = "aliases";
+
+    private static CryptoService instance;
+
+    private final Queue<PendingDecrypt> prompts = new ArrayDeque<>();
+    private HandlerThread batchThread;
+    private Messenger messenger;
+    private FingerprintUtils fingerprintUtils;
+    private KeyStore keyStore;
+    private boolean promptShowing;
+
+    public static Bundle encryptRequest(String alias, String data) {
+        Bundle request = new Bundle();
+        request.putInt(EXTRA_OP, OP_ENCRYPT);
+        request.putString(EXTRA_ALIAS, alias);
+        request.putString(EXTRA_DATA, data);
+        return request;
+    }
+
+    public static Bundle decryptRequest(String alias) {
+        Bundle request = new Bundle();
+        request.putInt(EXTRA_OP, OP_DECRYPT);
+        request.putString(EXTRA_ALIAS, alias);
+        return request;
+    }
+
+    public static Bundle hasKeyRequest(String alias) {
+        Bundle request = new Bundle();
+        request.putInt(EXTRA_OP, OP_HAS_KEY);
+        request.putString(EXTRA_ALIAS, alias);
+        return request;
+    }
+
+    public static Bundle listRequest() {
+        Bundle request = new Bundle();
+        request.putInt(EXTRA_OP, OP_LIST);
+        return request;
+    }
+
+    /**
+     * Builds the message for a batch of requests. The reply is sent to {@code replyTo} with the
+     * same {@link Message#arg1}, so clients can match replies to batches.
+     */
+    public static Message batchMessage(int batchId, ArrayList<Bundle> requests, Messenger replyTo) {
+        Message msg = Message.obtain(null, MSG_BATCH, batchId, 0);
+        Bundle data = new Bundle();
+        data.putParcelableArrayList(EXTRA_REQUESTS, requests);
+        msg.setData(data);
+        msg.replyTo = replyTo;
+        return msg;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        fingerprintUtils = FingerprintUtils.getInstance(this);
+        batchThread = new HandlerThread("CryptoService");
+        batchThread.start();
+        messenger = new Messenger(new BatchHandler(batchThread.getLooper(), this));
+        synchronized (CryptoService.class) {
+            instance = this;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        batchThread.quitSafely();
+        synchronized (CryptoService.class) {
+            // Anything still waiting on a scan can no longer be answered
+            cancelPrompts();
+            instance = null;
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return messenger.getBinder();
+    }
+
+    private void handleBatch(Message msg) {
+        ArrayList<Bundle> requests = msg.getData().getParcelableArrayList(EXTRA_REQUESTS);
+        if (requests == null)
+            requests = new ArrayList<>();
+        if (keyStore == null)
+            keyStore = CryptoUtils.getKeyStore();
+
+        Batch batch = new Batch(msg.replyTo, msg.arg1, requests.size());
+        List<PendingDecrypt> decrypts = new ArrayList<>();
+        SharedPreferences.Editor editor = fingerprintUtils.editEntries();
+        SharedPreferences.Editor metadataEditor = fingerprintUtils.editMetadata();
+        List<String> encrypted = new ArrayList<>();
+
+        for (int i = 0; i < requests.size(); i++) {
+            Bundle request = requests.get(i);
+            int op = request.getInt(EXTRA_OP);
+            String alias = request.getString(EXTRA_ALIAS);
+
+            switch (op) {
+                case OP_ENCRYPT:
+                    batch.complete(i, encrypt(editor, metadataEditor, alias, request.getString(EXTRA_DATA)));
+                    if (alias != null)
+                        encrypted.add(alias);
+                    break;
+                case OP_DECRYPT:
+                    if (hasKey(alias)) {
+                        batch.pending++;
+                        decrypts.add(new PendingDecrypt(batch, i, alias));
+                    } else {
+                        batch.complete(i, result(op, alias, STATUS_NO_KEY));
+                    }
+                    break;
+                case OP_HAS_KEY:
+                    Bundle hasKeyResult = result(op, alias, STATUS_OK);
+                    hasKeyResult.putBoolean(EXTRA_HAS_KEY, hasKey(alias));
+                    batch.complete(i, hasKeyResult);
+                    break;
+                case OP_LIST:
+                    batch.complete(i, list());
+                    break;
+                default:
+                    batch.complete(i, result(op, alias, STATUS_FAILED));
+                    break;
+            }
+        }
+
+        // Every encrypt in the batch is written to the preferences file at once
+        if (!encrypted.isEmpty()) {
+            editor.apply();
+            metadataEditor.apply();
+            // Only once applied, so a decrypt in between cannot cache the old records again
+            fingerprintUtils.invalidateEntries(encrypted);
+        }
+
+        if (batch.pending == 0) {
+            batch.send();
+        } else {
+            // Only queued once the batch is complete, so a prompt answered meanwhile cannot send it early
+            synchronized (CryptoService.class) {
+                prompts.addAll(decrypts);
+                showNextPrompt();
+            }
+        }
+    }
+
+    private Bundle encrypt(SharedPreferences.Editor editor, SharedPreferences.Editor metadataEditor, String alias, String data) {
+        if (keyStore == null || alias == null || data == null)
+            return result(OP_ENCRYPT, alias, STATUS_FAILED);
+        if (hasKey(alias))
+            return result(OP_ENCRYPT, alias, STATUS_EXISTS);
+
+        try {
+            fingerprintUtils.importEntry(keyStore, editor, metadataEditor, alias, data.getBytes("UTF-8"));
+            return result(OP_ENCRYPT, alias, STATUS_OK);
+        } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return result(OP_ENCRYPT, alias, STATUS_FAILED);
+        }
+    }
+
+    private boolean hasKey(String alias) {
+        try {
+            // Signing keys share the keystore but cannot encrypt or decrypt, so only count symmetric keys
+            return keyStore != null && alias != null && keyStore.containsAlias(alias)
+                    && keyStore.entryInstanceOf(alias, KeyStore.SecretKeyEntry.class);
+        } catch (KeyStoreException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private Bundle list() {
+        Bundle result = result(OP_LIST, null, STATUS_OK);
+        try {
+            ArrayList<String> aliases = new ArrayList<>();
+            if (keyStore != null) {
+                for (String alias : Collections.list(keyStore.aliases())) {
+                    if (keyStore.entryInstanceOf(alias, KeyStore.SecretKeyEntry.class))
+                        aliases.add(alias);
+                }
+            }
+            result.putStringArrayList(EXTRA_ALIASES, aliases);
+        } catch (KeyStoreException e) {
+            e.printStackTrace();
+            result.putInt(EXTRA_STATUS, STATUS_FAILED);
+        }
+        return result;
+    }
+
+    private void showNextPrompt() {
+        if (promptShowing || prompts.isEmpty())
+            return;
+
+        promptShowing = true;
+        Intent intent = new Intent(this, CryptoPromptActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        startActivity(intent);
+    }
+
+    /**
+     * @return the alias of the next decrypt waiting on a scan, or {@code null} if there are none
+     */
+    static synchronized String nextPromptAlias() {
+        if (instance == null || instance.prompts.isEmpty())
+            return null;
+        return instance.prompts.peek().alias;
+    }
+
+    /**
+     * Answers the decrypt at the head of the prompt queue
+     */
+    static synchronized void completePrompt(int status, String decrypted) {
+        if (instance == null)
+            return;
+
+        PendingDecrypt prompt = instance.prompts.poll();
+        if (prompt == null)
+            return;
+
+        Bundle result = result(OP_DECRYPT, prompt.alias, status);
+        if (decrypted != null)
+            result.putString(EXTRA_DATA, decrypted);
+        prompt.batch.complete(prompt.index, result);
+        if (--prompt.batch.pending == 0)
+            prompt.batch.send();
+    }
+
+    /**
+     * Answers every decrypt still waiting on a scan as cancelled
+     */
+    static synchronized void cancelPrompts() {
+        while (nextPromptAlias() != null) {
+            completePrompt(STATUS_CANCELLED, null);
+        }
+    }
+
+    /**
+     * Called once the prompt activity has finished, in case more decrypts were queued meanwhile
+     */
+    static synchronized void onPromptFinished() {
+        if (instance == null)
+            return;
+
+        instance.promptShowing = false;
+        instance.showNextPrompt();
+    }
+
+    private static Bundle result(int op, String alias, int status) {
+        Bundle result = new Bundle();
+        result.putInt(EXTRA_OP, op);
+        result.putString(EXTRA_ALIAS, alias);
+        result.putInt(EXTRA_STATUS, status);
+        return result;
+    }
+
+    private static class BatchHandler extends Handler {
+        private final WeakReference<CryptoService> service;
+
+        BatchHandler(Looper looper, CryptoService service) {
+            super(looper);
+            this.service = new WeakReference<>(service);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            CryptoService service = this.service.get();
+            if (msg.what == MSG_BATCH && service != null) {
+                service.handleBatch(msg);
+            } else {
+                super.handleMessage(msg);
+            }
+        }
+    }
+
+    private static class Batch {
+        final Messenger replyTo;
+        final int batchId;
+        final Bundle[] results;
+        int pending;
+
+        Batch(Messenger replyTo, int batchId, int size) {
+            this.replyTo = replyTo;
+            this.batchId = batchId;
+            this.results = new Bundle[size];
+        }
+
+        void complete(int index, Bundle result) {
+            results[index] = result;
+        }
+
+        void send() {
+            if (replyTo == null)
+                return;
+
+            Message reply = Message.obtain(null, MSG_BATCH_RESULT, batchId, 0);
+            Bundle data = new Bundle();
+            ArrayList<Bundle> resultList = new ArrayList<>(results.length);
+            Collections.addAll(resultList, results);
+            data.putParcelableArrayList(EXTRA_RESULTS, resultList);
+            reply.setData(data);
+            try {
+                replyTo.send(reply);
+            } catch (RemoteException e) {
+                // The client process has gone away, so there is nobody left to answer
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class PendingDecrypt {
+        final Batch batch;
+        final int index;
+        final String alias;
+
+        PendingDecrypt(Batch batch, int index, String alias) {
+            this.batch = batch;
+            this.index = index;
+            this.alias = alias;
+        }
+    }
+}
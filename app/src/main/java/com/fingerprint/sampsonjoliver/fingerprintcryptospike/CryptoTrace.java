@@ -0,0 +1,160 @@
+package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
+
+import android.os.SystemClock;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free ring buffer of structured trace events for individual crypto operations.
+ * Each event records when it happened, which operation and alias it belongs to, the phase the
+ * operation had reached and the outcome. Recording is a clock read, a cursor increment and five
+ * atomic array writes, so it is left on permanently; the buffer is only ever read when it is dumped with {@link #dump(File)}.
+ * Aliases are recorded as hashes only, so a dump never contains the alias itself.
+ */
+public class CryptoTrace {
+    public static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final int DUMP_MAGIC = 0x46505452; // "FPTR"
+    private static final int DUMP_VERSION = 1;
+
+    public static final byte PHASE_ENCRYPT = 1;
+    public static final byte PHASE_DECRYPT = 2;
+    public static final byte PHASE_CIPHER_INIT = 3;
+    public static final byte PHASE_SCAN_STARTED = 4;
+    public static final byte PHASE_SCAN_HELP = 5;
+    public static final byte PHASE_SCAN_FAILED = 6;
+    public static final byte PHASE_SCAN_ERROR = 7;
+    public static final byte PHASE_SCAN_SUCCEEDED = 8;
+    public static final byte PHASE_CRYPTO = 9;
+    public static final byte PHASE_EXPORT = 10;
+    public static final byte PHASE_IMPORT = 11;
+    public static final byte PHASE_SIGN = 12;
+
+    public static final byte OUTCOME_STARTED = 0;
+    public static final byte OUTCOME_SUCCESS = 1;
+    public static final byte OUTCOME_RETRY = 2;
+    public static final byte OUTCOME_FAILURE = 3;
+    public static final byte OUTCOME_INVALIDATED = 4;
+
+    private static final AtomicLong cursor = new AtomicLong();
+    private static final AtomicInteger nextOperationId = new AtomicInteger(1);
+    // Operation id in the high half and alias hash in the low half, so both are always read together
+    private static volatile long scanOperation;
+
+    // Sequence number of the event in each slot. It is cleared before the slot is written and set
+    // after, and every field is a volatile write, so a reader seeing the same sequence before and
+    // after reading the fields knows they all belong to that event.
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray timestamps = new AtomicLongArray(CAPACITY);
+    // Operation id in the high half, alias hash in the low half
+    private static final AtomicLongArray identities = new AtomicLongArray(CAPACITY);
+    // Code in the high half, then phase and outcome in the low two bytes
+    private static final AtomicLongArray details = new AtomicLongArray(CAPACITY);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, -1);
+        }
+    }
+
+    /**
+     * Starts tracing a new operation against the alias
+     * @return the id of the new operation
+     */
+    public static int beginOperation(String alias, byte phase) {
+        int operationId = nextOperationId.getAndIncrement();
+        record(operationId, alias == null ? 0 : alias.hashCode(), phase, OUTCOME_STARTED, 0);
+        return operationId;
+    }
+
+    /**
+     * Marks the operation, and the alias it is working on, as the one the next fingerprint scan is
+     * started for. Only one scan can be in progress on a device at once.
+     */
+    public static void setScanOperation(int operationId, String alias) {
+        scanOperation = ((long) operationId << 32) | ((alias == null ? 0 : alias.hashCode()) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the operation set by the last {@link #setScanOperation}, for a scan to keep for its events
+     */
+    public static long getScanOperation() {
+        return scanOperation;
+    }
+
+    /**
+     * Records an event against an operation from {@link #getScanOperation()}
+     */
+    public static void record(long operation, byte phase, byte outcome, int code) {
+        record((int) (operation >>> 32), (int) operation, phase, outcome, code);
+    }
+
+    public static void record(int operationId, String alias, byte phase, byte outcome) {
+        record(operationId, alias == null ? 0 : alias.hashCode(), phase, outcome, 0);
+    }
+
+    private static void record(int operationId, int aliasHash, byte phase, byte outcome, int code) {
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & MASK);
+        sequences.set(slot, -1);
+        timestamps.set(slot, SystemClock.elapsedRealtimeNanos());
+        identities.set(slot, ((long) operationId << 32) | (aliasHash & 0xFFFFFFFFL));
+        details.set(slot, ((long) code << 32) | ((phase & 0xFF) << 8) | (outcome & 0xFF));
+        sequences.set(slot, sequence);
+    }
+
+    /**
+     * Writes a compact binary dump of the events currently held in the buffer, oldest first.
+     * The dump is a header of magic, version and event count, followed by for each event its
+     * elapsed realtime in nanoseconds, operation id, alias hash, code, phase and outcome.
+     * Slots being overwritten while the dump is taken are skipped.
+     */
+    public static void dump(File file) throws IOException {
+        long end = cursor.get();
+        long start = Math.max(0, end - CAPACITY);
+
+        long[] dumpTimestamps = new long[CAPACITY];
+        long[] dumpIdentities = new long[CAPACITY];
+        long[] dumpDetails = new long[CAPACITY];
+        int count = 0;
+
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & MASK);
+            if (sequences.get(slot) != sequence)
+                continue;
+
+            dumpTimestamps[count] = timestamps.get(slot);
+            dumpIdentities[count] = identities.get(slot);
+            dumpDetails[count] = details.get(slot);
+
+            // Only keep the copy if the slot was not reused while we were reading it
+            if (sequences.get(slot) == sequence)
+                count++;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(DUMP_MAGIC);
+            out.writeByte(DUMP_VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(dumpTimestamps[i]);
+                out.writeInt((int) (dumpIdentities[i] >>> 32));
+                out.writeInt((int) dumpIdentities[i]);
+                out.writeInt((int) (dumpDetails[i] >>> 32));
+                out.writeByte((int) (dumpDetails[i] >>> 8));
+                out.writeByte((int) dumpDetails[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -4,16 +4,26 @@ import android.hardware.fingerprint.FingerprintManager;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.KeyProperties;
+import android.security.keystore.KeyProtection;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -26,7 +36,7 @@ import javax.crypto.spec.IvParameterSpec;
 public class CryptoUtils {
     public static final String KEY_STORE_TYPE = "AndroidKeyStore";
 
-    private static KeyStore getKeyStore() {
+    public static KeyStore getKeyStore() {
         try {
             KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
             keyStore.load(null);
@@ -37,11 +47,26 @@ public class CryptoUtils {
         return null;
     }
 
+    /**
+     * @return whether a symmetric key from {@link #createKey(String)} or
+     * {@link #importKey(KeyStore, String, SecretKey)} exists under the alias
+     */
     public static boolean hasKey(String alias) {
+        return hasEntry(alias, KeyStore.SecretKeyEntry.class);
+    }
+
+    /**
+     * @return whether a signing key from {@link #createSigningKey(String)} exists under the alias
+     */
+    public static boolean hasSigningKey(String alias) {
+        return hasEntry(alias, KeyStore.PrivateKeyEntry.class);
+    }
+
+    private static boolean hasEntry(String alias, Class<? extends KeyStore.Entry> entryClass) {
         try {
             KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
             keyStore.load(null);
-            return keyStore.containsAlias(alias) && keyStore.isKeyEntry(alias);
+            return keyStore.containsAlias(alias) && keyStore.entryInstanceOf(alias, entryClass);
         } catch (KeyStoreException | CertificateException | IOException | NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
@@ -82,6 +107,106 @@ public class CryptoUtils {
         }
     }
 
+    /**
+     * Creates an EC key pair in the Android Key Store for signing server challenges.
+     * The private key can only be used once the user has authenticated with fingerprint.
+     * @return the public key, to be registered with the server
+     */
+    public static PublicKey createSigningKey(String alias) {
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, KEY_STORE_TYPE);
+            keyPairGenerator.initialize(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_SIGN)
+                    .setDigests(KeyProperties.DIGEST_SHA256)
+                    .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+                    .setUserAuthenticationRequired(true)
+                    .build());
+            return keyPairGenerator.generateKeyPair().getPublic();
+        } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException("Failed to create a signing key", e);
+        }
+    }
+
+    /**
+     * Get a new signature instance. This instance must be initialised using
+     * {@link #initSignature(Signature, String)} and then signed using a {@link FingerprintManager}
+     */
+    public static Signature getSignature() throws NoSuchAlgorithmException {
+        return Signature.getInstance("SHA256withECDSA");
+    }
+
+    /**
+     * Initialize the {@link Signature} instance with the key created in {@link #createSigningKey(String)}
+     *
+     * @return {@code true} if initialization is successful, {@code false} if the lock screen has
+     * been disabled or reset after the key was generated, or if a fingerprint got enrolled after
+     * the key was generated
+     * @throws RuntimeException if the key alias does not exist
+     */
+    public static boolean initSignature(Signature signature, String alias) throws RuntimeException {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
+            keyStore.load(null);
+
+            Key key = keyStore.getKey(alias, null);
+            if (!(key instanceof PrivateKey))
+                throw new InvalidKeyException("No signing key under the alias");
+            signature.initSign((PrivateKey) key);
+            return true;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            return false;
+        } catch (KeyStoreException | CertificateException | UnrecoverableKeyException | IOException
+                | NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new RuntimeException("Failed to init Signature. This may be because the key's alias does not exist in the keystore.", e);
+        }
+    }
+
+    /**
+     * Encodes a batch of challenges as the message covered by a single signature: the number of
+     * challenges, then each challenge's length followed by its bytes, with lengths as big-endian
+     * 32 bit integers. The server rebuilds the same encoding from the challenges it issued to
+     * verify the signature.
+     */
+    public static byte[] encodeChallenges(List<byte[]> challenges) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(challenges.size());
+            for (byte[] challenge : challenges) {
+                out.writeInt(challenge.length);
+                out.write(challenge);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Not possible when writing to memory
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates a symmetric key outside the Android Key Store, so that data can be encrypted with it
+     * in software before the key is moved into the Key Store with {@link #importKey(KeyStore, String, SecretKey)}
+     */
+    public static SecretKey createImportableKey() throws NoSuchAlgorithmException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES);
+        keyGenerator.init(256);
+        return keyGenerator.generateKey();
+    }
+
+    /**
+     * Imports a key created by {@link #createImportableKey()} into the Android Key Store under the
+     * alias, with the same protection as a key from {@link #createKey(String)}.
+     * Once imported, this key can only be used once the user has authenticated with fingerprint.
+     */
+    public static void importKey(KeyStore keyStore, String alias, SecretKey key) throws KeyStoreException {
+        keyStore.setEntry(alias, new KeyStore.SecretKeyEntry(key),
+                new KeyProtection.Builder(KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                        .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
+                        .setUserAuthenticationRequired(true)
+                        .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7)
+                        .build());
+    }
+
     /**
      * Get a new cryptographic cipher instance. This instance must be initialised using
      * {@link #initCipher(Cipher, String, int, byte[])} and then signed using a {@link FingerprintManager}
@@ -113,7 +238,9 @@ public class CryptoUtils {
             KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
             keyStore.load(null);
 
-            SecretKey key = (SecretKey) keyStore.getKey(alias, null);
+            Key key = keyStore.getKey(alias, null);
+            if (!(key instanceof SecretKey))
+                throw new InvalidKeyException("No symmetric key under the alias");
             if (mode == Cipher.ENCRYPT_MODE) {
                 cipher.init(mode, key);
             } else {
@@ -0,0 +1,41 @@
+package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
+
+import android.util.LruCache;
+
+/**
+ * A size-bounded LRU cache of decoded entry records, keyed by alias.
+ * Only the IV and ciphertext are ever held here - never decrypted data - so a cached record is
+ * no more sensitive than the preferences file it was read from.
+ */
+public class EntryCache extends LruCache<String, EntryCache.Entry> {
+    public static final int DEFAULT_MAX_SIZE_BYTES = 16 * 1024;
+
+    public EntryCache(int maxSizeBytes) {
+        super(maxSizeBytes);
+    }
+
+    @Override
+    protected int sizeOf(String alias, Entry entry) {
+        // Rough footprint of the record: both byte arrays plus the alias characters
+        return entry.iv.length + entry.encryptedData.length + alias.length() * 2;
+    }
+
+    /**
+     * @return the fraction of lookups served from the cache, or {@code 0} if nothing has been
+     * looked up yet
+     */
+    public synchronized float hitRate() {
+        int lookups = hitCount() + missCount();
+        return lookups == 0 ? 0f : (float) hitCount() / lookups;
+    }
+
+    public static class Entry {
+        public final byte[] iv;
+        public final byte[] encryptedData;
+
+        public Entry(byte[] iv, byte[] encryptedData) {
+            this.iv = iv;
+            this.encryptedData = encryptedData;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unencrypted bookkeeping for a stored entry: when it was created and last used, and how many bytes
+ * it stores. Metadata lives in its own preferences file, so it can be queried without loading the
+ * encrypted records or touching the keystore.
+ */
+public class EntryMetadata {
+    public final String alias;
+    public final long createdAt;
+    public final long lastUsedAt;
+    public final int size;
+
+    public EntryMetadata(String alias, long createdAt, long lastUsedAt, int size) {
+        this.alias = alias;
+        this.createdAt = createdAt;
+        this.lastUsedAt = lastUsedAt;
+        this.size = size;
+    }
+
+    /**
+     * @return whether the entry has gone unused for the TTL, where a TTL of {@code 0} never expires
+     */
+    public boolean isExpired(long now, long ttlMillis) {
+        return ttlMillis > 0 && lastUsedAt + ttlMillis <= now;
+    }
+
+    /**
+     * Reads and writes {@link EntryMetadata} along with the TTL and max-entry policies applied to it.
+     * Only when each entry was last used is stored; its expiry is worked out from the current TTL
+     * when needed, so a TTL change applies to every entry at once.
+     */
+    public static class Store {
+        private static final String STORAGE_FILE_NAME = "fingerprint_crypto_service_metadata";
+        private static final String ENTRY_KEY_PREFIX = "entry:";
+        private static final String TTL_KEY = "policy:ttl";
+        private static final String MAX_ENTRIES_KEY = "policy:maxEntries";
+
+        private final SharedPreferences preferences;
+
+        public Store(Context context) {
+            preferences = context.getSharedPreferences(STORAGE_FILE_NAME, Context.MODE_PRIVATE);
+        }
+
+        /**
+         * @return the time an entry may go unused before it expires, or {@code 0} if entries never expire
+         */
+        public long getTtlMillis() {
+            return preferences.getLong(TTL_KEY, 0);
+        }
+
+        public void setTtlMillis(long ttlMillis) {
+            preferences.edit().putLong(TTL_KEY, ttlMillis).apply();
+        }
+
+        /**
+         * @return the number of entries kept before the least recently used are purged, or {@code 0}
+         * for no limit
+         */
+        public int getMaxEntries() {
+            return preferences.getInt(MAX_ENTRIES_KEY, 0);
+        }
+
+        public void setMaxEntries(int maxEntries) {
+            preferences.edit().putInt(MAX_ENTRIES_KEY, maxEntries).apply();
+        }
+
+        public EntryMetadata get(String alias) {
+            return decode(alias, preferences.getString(ENTRY_KEY_PREFIX + alias, null));
+        }
+
+        public List<EntryMetadata> getAll() {
+            List<EntryMetadata> entries = new ArrayList<>();
+            for (Map.Entry<String, ?> pref : preferences.getAll().entrySet()) {
+                if (pref.getKey().startsWith(ENTRY_KEY_PREFIX) && pref.getValue() instanceof String) {
+                    String alias = pref.getKey().substring(ENTRY_KEY_PREFIX.length());
+                    EntryMetadata metadata = decode(alias, (String) pref.getValue());
+                    if (metadata != null)
+                        entries.add(metadata);
+                }
+            }
+            return entries;
+        }
+
+        public SharedPreferences.Editor edit() {
+            return preferences.edit();
+        }
+
+        /**
+         * Records a newly written entry of the given size in the editor
+         */
+        public void putCreated(SharedPreferences.Editor editor, String alias, int size, long now) {
+            put(editor, new EntryMetadata(alias, now, now, size));
+        }
+
+        /**
+         * Records a use of the entry, which pushes back when it expires
+         */
+        public void touch(String alias, long now) {
+            EntryMetadata metadata = get(alias);
+            if (metadata == null)
+                return;
+
+            SharedPreferences.Editor editor = preferences.edit();
+            put(editor, new EntryMetadata(alias, metadata.createdAt, now, metadata.size));
+            editor.apply();
+        }
+
+        public void remove(SharedPreferences.Editor editor, String alias) {
+            editor.remove(ENTRY_KEY_PREFIX + alias);
+        }
+
+        private static void put(SharedPreferences.Editor editor, EntryMetadata metadata) {
+            editor.putString(ENTRY_KEY_PREFIX + metadata.alias,
+                    metadata.createdAt + ":" + metadata.lastUsedAt + ":" + metadata.size);
+        }
+
+        private static EntryMetadata decode(String alias, String encoded) {
+            if (encoded == null)
+                return null;
+
+            String[] fields = encoded.split(":");
+            if (fields.length != 3)
+                return null;
+
+            try {
+                return new EntryMetadata(alias, Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        Integer.parseInt(fields[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
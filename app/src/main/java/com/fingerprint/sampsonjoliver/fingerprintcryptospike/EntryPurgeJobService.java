@@ -0,0 +1,50 @@
+package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.AsyncTask;
+
+/**
+ * Runs {@link FingerprintUtils#purgeExpiredEntries()} off the main thread when scheduled through
+ * {@link FingerprintUtils#schedulePurge(long)}
+ */
+public class EntryPurgeJobService extends JobService {
+    public static final int JOB_ID = 0x46505047; // "FPPG"
+
+    private PurgeTask task;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        task = new PurgeTask(params);
+        task.execute();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Purging is idempotent, so whatever was left is picked up on the next run
+        if (task != null) {
+            task.cancel(false);
+        }
+        return false;
+    }
+
+    private class PurgeTask extends AsyncTask<Void, Void, Void> {
+        private final JobParameters params;
+
+        PurgeTask(JobParameters params) {
+            this.params = params;
+        }
+
+        @Override
+        protected Void doInBackground(Void... voids) {
+            FingerprintUtils.getInstance(EntryPurgeJobService.this).purgeExpiredEntries();
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            jobFinished(params, false);
+        }
+    }
+}
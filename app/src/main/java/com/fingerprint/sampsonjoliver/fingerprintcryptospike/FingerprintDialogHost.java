@@ -0,0 +1,96 @@
+package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
+
+import android.app.Activity;
+import android.app.FragmentManager;
+import android.content.Context;
+import android.hardware.fingerprint.FingerprintManager;
+
+/**
+ * Owns a single retained {@link FingerprintScanDialog} and reuses it for every crypto operation,
+ * swapping in the new {@link FingerprintManager.CryptoObject} and strings rather than creating and
+ * inflating a fresh dialog each time.
+ * The caller's listener is never captured by the dialog. It is held here, behind
+ * {@link #getListener(Class)}, and kept as given for the whole operation. The one exception is
+ * a listener which is the activity hosting the dialog: it is released when that activity goes
+ * away, and replaced by the recreated activity if that activity implements the same listener.
+ */
+public class FingerprintDialogHost {
+    private final FingerprintScanDialog dialog;
+
+    private Class<?> listenerType;
+    private volatile Object listener;
+    private boolean awaitingRebind;
+
+    public FingerprintDialogHost() {
+        dialog = new FingerprintScanDialog();
+        dialog.setHost(this);
+    }
+
+    /**
+     * @return the listener bound for the current operation if it is of the given type, or
+     * {@code null} if there is none
+     */
+    public <T> T getListener(Class<T> type) {
+        Object current = listener;
+        return type.isInstance(current) ? type.cast(current) : null;
+    }
+
+    /**
+     * Shows the dialog in the given manager for a new operation. If the dialog is still showing
+     * in another activity, that activity's operation is cancelled and the dialog moved over.
+     *
+     * @param listenerType the interface {@code listener} is bound as, so a recreated activity
+     *                     implementing it can take over
+     * @param listener the caller's listener for the operation, or {@code null} if it has none
+     */
+    public void show(FragmentManager manager, FingerprintManager.CryptoObject cryptoObject,
+                     String title, String descriptionText, String scanText, String scanSuccessText, String scanFailedText,
+                     Class<?> listenerType, Object listener, FingerprintScanDialog.IFingerprintScanListener scanListener) {
+        FragmentManager currentManager = dialog.getFragmentManager();
+        if (dialog.isAdded() && currentManager != manager) {
+            // Another activity's operation still holds the dialog, so cancel it while its listener
+            // is still bound, then move the dialog over
+            FingerprintScanDialog.IFingerprintScanListener previous = dialog.getListener();
+            dialog.setListener(null);
+            if (previous != null) {
+                previous.onCancelled();
+            }
+            dialog.dismissAllowingStateLoss();
+            currentManager.executePendingTransactions();
+        }
+
+        this.listenerType = listenerType;
+        this.listener = listener;
+        awaitingRebind = false;
+
+        dialog.setTitleText(title);
+        dialog.setDescriptionText(descriptionText);
+        dialog.setScanText(scanText);
+        dialog.setScanSuccessText(scanSuccessText);
+        dialog.setScanFailedText(scanFailedText);
+        dialog.setCryptoObject(cryptoObject);
+        dialog.setListener(scanListener);
+
+        if (dialog.isAdded()) {
+            // Already showing for a previous operation, so just restart the scan with the new cipher
+            dialog.restart();
+        } else {
+            dialog.show(manager, FingerprintScanDialog.TAG);
+        }
+    }
+
+    void onDialogAttached(Context context) {
+        if (awaitingRebind && listenerType != null && listenerType.isInstance(context)) {
+            listener = context;
+            awaitingRebind = false;
+        }
+    }
+
+    void onDialogDetached(Activity activity) {
+        // Only let go of the listener if it is the activity which is going away
+        if (activity != null && listener == activity) {
+            listener = null;
+            awaitingRebind = true;
+        }
+    }
+}
@@ -18,10 +18,13 @@ package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
 
 import android.Manifest;
 import android.app.DialogFragment;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.pm.PackageManager;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Bundle;
 import android.support.v4.app.ActivityCompat;
+import android.view.ContextThemeWrapper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -48,7 +51,11 @@ public class FingerprintScanDialog extends DialogFragment implements Fingerprint
 
     private IFingerprintScanListener listener;
     private FingerprintUtils.FingerprintHelper fingerprintHelper;
+    private FingerprintDialogHost host;
 
+    private Runnable successRunnable;
+
+    private View contentView;
     private ImageView icon;
     private TextView status;
     private TextView desc;
@@ -93,21 +100,75 @@ public class FingerprintScanDialog extends DialogFragment implements Fingerprint
         // Do not create a new Fragment when the Activity is re-created such as orientation changes.
         setRetainInstance(true);
         setStyle(DialogFragment.STYLE_NORMAL, android.R.style.Theme_Material_Light_Dialog);
-        fingerprintHelper = new FingerprintUtils.FingerprintHelper(this, getContext());
+        if (fingerprintHelper == null) {
+            // The helper outlives any one activity when this dialog is reused, so bind it to the app
+            fingerprintHelper = new FingerprintUtils.FingerprintHelper(this, getContext().getApplicationContext());
+        }
+    }
+
+    @Override
+    public void onAttach(Context context) {
+        super.onAttach(context);
+        if (host != null) {
+            host.onDialogAttached(context);
+        }
+    }
+
+    @Override
+    public void onDetach() {
+        if (host != null) {
+            // Still attached at this point, so the host can tell which activity is going away
+            host.onDialogDetached(getActivity());
+        }
+        super.onDetach();
     }
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         getDialog().setTitle(titleText);
 
-        View view = inflater.inflate(R.layout.dialog_fingerprint_scan, container, false);
+        if (contentView == null) {
+            if (host != null) {
+                // A reused dialog keeps its view between operations, so inflate against the
+                // application rather than an activity which may be destroyed in the meantime
+                Context themedContext = new ContextThemeWrapper(getContext().getApplicationContext(), getTheme());
+                contentView = LayoutInflater.from(themedContext).inflate(R.layout.dialog_fingerprint_scan, container, false);
+            } else {
+                contentView = inflater.inflate(R.layout.dialog_fingerprint_scan, container, false);
+            }
 
-        icon = (ImageView) view.findViewById(R.id.fingerprint_icon);
-        status = (TextView) view.findViewById(R.id.fingerprint_status);
-        desc = (TextView) view.findViewById(R.id.fingerprint_description);
-        desc.setText(descriptionText);
+            icon = (ImageView) contentView.findViewById(R.id.fingerprint_icon);
+            status = (TextView) contentView.findViewById(R.id.fingerprint_status);
+            desc = (TextView) contentView.findViewById(R.id.fingerprint_description);
+        } else if (contentView.getParent() != null) {
+            ((ViewGroup) contentView.getParent()).removeView(contentView);
+        }
+
+        resetViews();
+        return contentView;
+    }
+
+    @Override
+    public void onDestroyView() {
+        contentView.removeCallbacks(mResetErrorTextRunnable);
+        if (isRemoving()) {
+            // A scan recognised just before the dialog was dismissed is not delivered, but one
+            // recognised before a configuration change still is
+            contentView.removeCallbacks(successRunnable);
+            successRunnable = null;
+        }
+        super.onDestroyView();
+        if (host == null) {
+            contentView = null;
+        }
+    }
 
-        return view;
+    @Override
+    public void onCancel(DialogInterface dialog) {
+        super.onCancel(dialog);
+        if (listener != null) {
+            listener.onCancelled();
+        }
     }
 
     @Override
@@ -132,6 +193,29 @@ public class FingerprintScanDialog extends DialogFragment implements Fingerprint
         fingerprintHelper.stopListening();
     }
 
+    /**
+     * Restarts the scan with the current crypto object and strings while the dialog is showing
+     */
+    public void restart() {
+        if (getDialog() != null) {
+            getDialog().setTitle(titleText);
+        }
+        if (contentView != null) {
+            contentView.removeCallbacks(mResetErrorTextRunnable);
+            resetViews();
+        }
+        if (isResumed()) {
+            stopListening();
+            startListening(cryptoObject);
+        }
+    }
+
+    private void resetViews() {
+        desc.setText(descriptionText);
+        status.setText(scanText);
+        icon.setImageResource(R.drawable.ic_fp_40px);
+    }
+
      public void setCryptoObject(FingerprintManager.CryptoObject mCryptoObject) {
          this.cryptoObject = mCryptoObject;
      }
@@ -140,6 +224,14 @@ public class FingerprintScanDialog extends DialogFragment implements Fingerprint
         this.listener = listener;
     }
 
+    IFingerprintScanListener getListener() {
+        return listener;
+    }
+
+    void setHost(FingerprintDialogHost host) {
+        this.host = host;
+    }
+
     @Override
     public void onScanStarted() {
         icon.setImageResource(R.drawable.ic_fp_40px);
@@ -152,13 +244,20 @@ public class FingerprintScanDialog extends DialogFragment implements Fingerprint
         status.setText(isRecognised ? scanSuccessText : scanFailedText);
         if (getView() != null) {
             if (isRecognised) {
-                getView().postDelayed(new Runnable() {
+                // Capture the listener for this scan, as a reused dialog may be handed a new one
+                final IFingerprintScanListener scanListener = listener;
+                successRunnable = new Runnable() {
                     @Override
                     public void run() {
-                        listener.onSuccess();
-                        dismiss();
+                        successRunnable = null;
+                        scanListener.onSuccess();
+                        // Stay open if the next operation was handed to this dialog from onSuccess
+                        if (listener == scanListener) {
+                            dismiss();
+                        }
                     }
-                }, SUCCESS_DELAY_MILLIS);
+                };
+                getView().postDelayed(successRunnable, SUCCESS_DELAY_MILLIS);
             } else {
                 getView().postDelayed(mResetErrorTextRunnable, ERROR_TIMEOUT_MILLIS);
             }
@@ -184,5 +283,11 @@ public class FingerprintScanDialog extends DialogFragment implements Fingerprint
 
     public interface IFingerprintScanListener {
         void onSuccess();
+
+        /**
+         * Called if the dialog is dismissed by the user, or taken over by another activity, before
+         * the scan succeeds
+         */
+        void onCancelled();
     }
 }
@@ -3,40 +3,116 @@ package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
 import android.Manifest;
 import android.app.FragmentManager;
 import android.app.KeyguardManager;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.hardware.fingerprint.FingerprintManager;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.CancellationSignal;
+import android.os.Trace;
 import android.support.annotation.RequiresPermission;
-import android.support.annotation.VisibleForTesting;
 import android.util.Base64;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
 
 import static android.Manifest.permission.USE_FINGERPRINT;
 
 public class FingerprintUtils {
     private static final String STORAGE_FILE_NAME = "fingerprint_crypto_service_credentials";
+    private static final String IV_KEY_SUFFIX = "encryptionIv";
+    private static final String PASSWORD_KEY_SUFFIX = "password";
+    /**
+     * Keystore alias prefix for signing keys, keeping them apart from the keys used by encrypt
+     */
+    private static final String SIGNING_KEY_PREFIX = "signing:";
+
+    /**
+     * Number of archive entries read before any of their keys are imported, then committed together
+     */
+    private static final int IMPORT_BATCH_SIZE = 100;
+
+    /**
+     * Age under which a key without a record is left alone by a purge, as its encrypt may still be
+     * waiting on a scan
+     */
+    private static final long ORPHAN_GRACE_MILLIS = 60 * 60 * 1000;
+
+    private static final ICryptoAuthListener NO_AUTH_LISTENER = new ICryptoAuthListener() {
+        @Override
+        public void onEncrypted(String cryptoResult) {}
+
+        @Override
+        public void onDecrypted(String cryptoResult) {}
+
+        @Override
+        public void onFailure() {}
+
+        @Override
+        public void onKeystoreInvalidated() {}
+    };
+
+    private static final ISignListener NO_SIGN_LISTENER = new ISignListener() {
+        @Override
+        public void onSigned(String signature) {}
+
+        @Override
+        public void onFailure() {}
+
+        @Override
+        public void onKeystoreInvalidated() {}
+    };
 
     private final Context context;
     private final SharedPreferences preferences;
+    private final EntryCache entryCache;
+    private final EntryMetadata.Store metadataStore;
+    private final FingerprintDialogHost dialogHost;
     private static FingerprintUtils instance;
 
     private FingerprintUtils(Context context) {
-        this.context = context;
+        // Hold the application context, as this instance outlives whichever activity created it
+        this.context = context.getApplicationContext();
         preferences = context.getSharedPreferences(STORAGE_FILE_NAME, Context.MODE_PRIVATE);
+        entryCache = new EntryCache(EntryCache.DEFAULT_MAX_SIZE_BYTES);
+        metadataStore = new EntryMetadata.Store(context);
+        dialogHost = new FingerprintDialogHost();
     }
 
-    public static FingerprintUtils getInstance(Context context) {
+    /**
+     * Synchronized, as the instance is also fetched off the main thread by {@link EntryPurgeJobService}
+     */
+    public static synchronized FingerprintUtils getInstance(Context context) {
         if (instance == null) {
             instance = new FingerprintUtils(context);
         }
@@ -64,6 +140,21 @@ public class FingerprintUtils {
         return context.checkSelfPermission(Manifest.permission.USE_FINGERPRINT) == PackageManager.PERMISSION_GRANTED;
     }
 
+    /**
+     * Sets the memory budget, in bytes, of the cache of decoded entry records. Records are evicted
+     * least-recently-used first once the budget is exceeded.
+     */
+    public void setEntryCacheSize(int maxSizeBytes) {
+        entryCache.resize(maxSizeBytes);
+    }
+
+    /**
+     * @return the cache of decoded entry records, for inspecting its hit rate and eviction stats
+     */
+    public EntryCache getEntryCache() {
+        return entryCache;
+    }
+
     @SuppressWarnings("all")
     public boolean isFingerprintAuthAvailable() {
         FingerprintManager fingerprintManager = context.getSystemService(FingerprintManager.class);
@@ -76,35 +167,57 @@ public class FingerprintUtils {
      * Encrypts the provided data under the alias as a key, and signs the cipher with a fingerprint
      */
     public void encrypt(FragmentManager fragmentManager, final String alias, final String data, final ICryptoAuthListener callbacks) {
+        final int operationId = CryptoTrace.beginOperation(alias, CryptoTrace.PHASE_ENCRYPT);
+        Trace.beginSection("FingerprintUtils.encrypt");
         try {
             final Cipher cipher = CryptoUtils.getCipher();
             CryptoUtils.createKey(alias);
 
             if (CryptoUtils.initCipher(cipher, alias, Cipher.ENCRYPT_MODE, null)) {
-                byte[] iv = cipher.getIV();
+                final byte[] iv = cipher.getIV();
                 writeIv(alias, iv);
+                CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CIPHER_INIT, CryptoTrace.OUTCOME_SUCCESS);
 
                 // Show the dialog
-                signCryptoWithFingerprint(fragmentManager, cipher, new FingerprintScanDialog.IFingerprintScanListener() {
+                signCryptoWithFingerprint(fragmentManager, cipher, operationId, alias, callbacks, new FingerprintScanDialog.IFingerprintScanListener() {
                     @Override
                     public void onSuccess() {
+                        // Resolve the listener now rather than capturing it, as the activity may have been recreated
+                        ICryptoAuthListener callbacks = getAuthListener();
+                        Trace.beginSection("FingerprintUtils.tryEncrypt");
                         try {
                             byte[] bytes = CryptoUtils.tryEncrypt(data, cipher);
                             writeEncryptedPassword(alias, bytes);
+                            SharedPreferences.Editor metadataEditor = metadataStore.edit();
+                            metadataStore.putCreated(metadataEditor, alias, iv.length + bytes.length, System.currentTimeMillis());
+                            metadataEditor.apply();
+                            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CRYPTO, CryptoTrace.OUTCOME_SUCCESS);
                             callbacks.onEncrypted(Base64.encodeToString(bytes, 0));
                         } catch (BadPaddingException | IllegalBlockSizeException | IOException e) {
                             e.printStackTrace();
+                            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CRYPTO, CryptoTrace.OUTCOME_FAILURE);
                             callbacks.onFailure();
+                        } finally {
+                            Trace.endSection();
                         }
                     }
+
+                    @Override
+                    public void onCancelled() {
+                        notifyAuthCancelled();
+                    }
                 });
             } else {
                 // This happens if the lock screen has been disabled or a new fingerprint got enrolled.
+                CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CIPHER_INIT, CryptoTrace.OUTCOME_INVALIDATED);
                 callbacks.onKeystoreInvalidated();
             }
         } catch (NoSuchPaddingException | NoSuchAlgorithmException | IOException e) {
             e.printStackTrace();
+            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CIPHER_INIT, CryptoTrace.OUTCOME_FAILURE);
             callbacks.onFailure();
+        } finally {
+            Trace.endSection();
         }
     }
 
@@ -112,73 +225,786 @@ public class FingerprintUtils {
      * Retrieval process for an existing cryptographic entry signed by a fingerprint
      * Decrypts the data stored under the alias as a key, and signs the cipher with a fingerprint
      */
-    public void decrypt(FragmentManager fragmentManager, String alias, final ICryptoAuthListener callbacks) {
-        if (!CryptoUtils.hasKey(alias))
+    public void decrypt(FragmentManager fragmentManager, final String alias, final ICryptoAuthListener callbacks) {
+        final int operationId = CryptoTrace.beginOperation(alias, CryptoTrace.PHASE_DECRYPT);
+        if (!CryptoUtils.hasKey(alias)) {
+            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_DECRYPT, CryptoTrace.OUTCOME_FAILURE);
+            callbacks.onFailure();
             return;
+        }
 
+        Trace.beginSection("FingerprintUtils.decrypt");
         try {
             final Cipher cipher = CryptoUtils.getCipher();
-            final byte[] iv = readIv(alias);
+            final EntryCache.Entry entry = readEntry(alias);
 
-            if (CryptoUtils.initCipher(cipher, alias, Cipher.DECRYPT_MODE, iv)) {
-                final byte[] encryptedPassword = readEncryptedPassword(alias);
+            if (CryptoUtils.initCipher(cipher, alias, Cipher.DECRYPT_MODE, entry.iv)) {
+                final byte[] encryptedPassword = entry.encryptedData;
+                CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CIPHER_INIT, CryptoTrace.OUTCOME_SUCCESS);
 
-                signCryptoWithFingerprint(fragmentManager, cipher, new FingerprintScanDialog.IFingerprintScanListener() {
+                signCryptoWithFingerprint(fragmentManager, cipher, operationId, alias, callbacks, new FingerprintScanDialog.IFingerprintScanListener() {
                     @Override
                     public void onSuccess() {
+                        ICryptoAuthListener callbacks = getAuthListener();
+                        Trace.beginSection("FingerprintUtils.tryDecrypt");
                         try {
                             byte[] bytes = CryptoUtils.tryDecrypt(encryptedPassword, cipher);
+                            metadataStore.touch(alias, System.currentTimeMillis());
+                            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CRYPTO, CryptoTrace.OUTCOME_SUCCESS);
                             callbacks.onDecrypted(new String(bytes, 0, bytes.length, "UTF-8"));
                         } catch (BadPaddingException | UnsupportedEncodingException | IllegalBlockSizeException e) {
                             e.printStackTrace();
+                            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CRYPTO, CryptoTrace.OUTCOME_FAILURE);
                             callbacks.onFailure();
+                        } finally {
+                            Trace.endSection();
                         }
                     }
+
+                    @Override
+                    public void onCancelled() {
+                        notifyAuthCancelled();
+                    }
                 });
 
             } else {
                 // This happens if the lock screen has been disabled or a new fingerprint got enrolled.
+                CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CIPHER_INIT, CryptoTrace.OUTCOME_INVALIDATED);
                 callbacks.onKeystoreInvalidated();
             }
         } catch (NoSuchPaddingException | NoSuchAlgorithmException | IOException e) {
             e.printStackTrace();
+            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CIPHER_INIT, CryptoTrace.OUTCOME_FAILURE);
+            callbacks.onFailure();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Creates a fingerprint-bound signing key under the alias, replacing any existing signing key.
+     * Signing keys are stored apart from the keys used by {@link #encrypt}, so an alias can have
+     * both. No scan is needed to create the key.
+     * @return the Base64 X.509 encoding of the public key, to be registered with the server
+     */
+    public String createSigningKey(String alias) {
+        PublicKey publicKey = CryptoUtils.createSigningKey(SIGNING_KEY_PREFIX + alias);
+        return Base64.encodeToString(publicKey.getEncoded(), Base64.NO_WRAP);
+    }
+
+    public boolean hasSigningKey(String alias) {
+        return CryptoUtils.hasSigningKey(SIGNING_KEY_PREFIX + alias);
+    }
+
+    /**
+     * Removes the signing key for the alias from the keystore
+     */
+    public boolean deleteSigningKey(String alias) {
+        return CryptoUtils.deleteKey(SIGNING_KEY_PREFIX + alias);
+    }
+
+    /**
+     * Signs a batch of server challenges with the signing key under the alias, after a single
+     * fingerprint scan. One signature covers the whole batch, over the encoding described in
+     * {@link CryptoUtils#encodeChallenges(List)}, so the server verifies it against the challenges
+     * it issued rather than against a password.
+     * If the listener also implements {@link ICryptoCancelListener}, it hears when the user dismisses
+     * the scan dialog; otherwise that is reported as a failure.
+     */
+    public void sign(FragmentManager fragmentManager, final String alias, final List<byte[]> challenges, ISignListener callbacks) {
+        final int operationId = CryptoTrace.beginOperation(alias, CryptoTrace.PHASE_SIGN);
+        String keyAlias = SIGNING_KEY_PREFIX + alias;
+        if (!CryptoUtils.hasSigningKey(keyAlias) || challenges.isEmpty()) {
+            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_SIGN, CryptoTrace.OUTCOME_FAILURE);
+            callbacks.onFailure();
+            return;
+        }
+
+        Trace.beginSection("FingerprintUtils.sign");
+        try {
+            final Signature signature = CryptoUtils.getSignature();
+
+            if (CryptoUtils.initSignature(signature, keyAlias)) {
+                CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CIPHER_INIT, CryptoTrace.OUTCOME_SUCCESS);
+                showScanDialog(fragmentManager, new FingerprintManager.CryptoObject(signature), operationId, alias, ISignListener.class, callbacks, new FingerprintScanDialog.IFingerprintScanListener() {
+                    @Override
+                    public void onSuccess() {
+                        ISignListener callbacks = getSignListener();
+                        Trace.beginSection("FingerprintUtils.trySign");
+                        try {
+                            signature.update(CryptoUtils.encodeChallenges(challenges));
+                            byte[] bytes = signature.sign();
+                            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CRYPTO, CryptoTrace.OUTCOME_SUCCESS);
+                            callbacks.onSigned(Base64.encodeToString(bytes, Base64.NO_WRAP));
+                        } catch (SignatureException e) {
+                            e.printStackTrace();
+                            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CRYPTO, CryptoTrace.OUTCOME_FAILURE);
+                            callbacks.onFailure();
+                        } finally {
+                            Trace.endSection();
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled() {
+                        CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_SIGN, CryptoTrace.OUTCOME_FAILURE);
+                        ICryptoCancelListener cancelListener = dialogHost.getListener(ICryptoCancelListener.class);
+                        if (cancelListener != null) {
+                            cancelListener.onCancelled();
+                        } else {
+                            getSignListener().onFailure();
+                        }
+                    }
+                });
+            } else {
+                // This happens if the lock screen has been disabled or a new fingerprint got enrolled.
+                CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CIPHER_INIT, CryptoTrace.OUTCOME_INVALIDATED);
+                callbacks.onKeystoreInvalidated();
+            }
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_CIPHER_INIT, CryptoTrace.OUTCOME_FAILURE);
             callbacks.onFailure();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Exports every stored entry into a {@link VaultArchive}, re-encrypted under a key derived from
+     * the passphrase, for importing on another device with {@link #importVault}.
+     * Each entry's key requires its own fingerprint authentication, so the scan dialog stays open
+     * and is handed the next entry's cipher after each successful scan. Deriving the export key,
+     * sealing chunks and writing the stream all happen on a background thread, and the output
+     * stream is closed however the export finishes, including when the scan is cancelled.
+     */
+    public void exportVault(FragmentManager fragmentManager, OutputStream out, char[] passphrase, IVaultListener listener) {
+        int operationId = CryptoTrace.beginOperation(null, CryptoTrace.PHASE_EXPORT);
+        new VaultExport(fragmentManager, out, passphrase, listAliases(), operationId, listener).start();
+    }
+
+    /**
+     * Imports every entry in a {@link VaultArchive} written by {@link #exportVault}, replacing any
+     * existing entries with the same alias.
+     * A single fingerprint scan confirms the import. Each entry is then encrypted in software under
+     * a fresh key which is imported into the Android Key Store with the same protection as keys
+     * created by {@link #encrypt}, so no further scans are needed. The archive is streamed on a
+     * background thread in batches. Each batch is read and authenticated in full before any of its
+     * keys are imported, and its keys and records are then committed together, so a corrupt or
+     * truncated archive never leaves an entry with a key that does not match its record. Batches
+     * before the failure stay imported. The input stream is closed however the import finishes,
+     * including when the scan is cancelled.
+     */
+    public void importVault(FragmentManager fragmentManager, final InputStream in, final char[] passphrase, final IVaultListener listener) {
+        final int operationId = CryptoTrace.beginOperation(null, CryptoTrace.PHASE_IMPORT);
+        showScanDialog(fragmentManager, null, operationId, null, null, null, new FingerprintScanDialog.IFingerprintScanListener() {
+            @Override
+            public void onSuccess() {
+                new VaultImportTask(in, passphrase, operationId, listener).execute();
+            }
+
+            @Override
+            public void onCancelled() {
+                AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeQuietly(in);
+                    }
+                });
+                CryptoTrace.record(operationId, null, CryptoTrace.PHASE_IMPORT, CryptoTrace.OUTCOME_FAILURE);
+                listener.onFailure();
+            }
+        });
+    }
+
+    /**
+     * Encrypts the data in software under a fresh key, then imports that key into the keystore
+     * with the same protection as keys created by {@link #encrypt}. No fingerprint scan is needed to
+     * store the entry, but one is needed to decrypt it again. The records and metadata are added to
+     * the editors, and are only stored once the caller applies them. The key is replaced at once, so
+     * the caller must store the records even if a later entry fails, and then
+     * {@link #invalidateEntries} so no stale record is left cached.
+     */
+    void importEntry(KeyStore keyStore, SharedPreferences.Editor editor, SharedPreferences.Editor metadataEditor,
+                     String alias, byte[] data) throws GeneralSecurityException {
+        SecretKey key = CryptoUtils.createImportableKey();
+        Cipher cipher = CryptoUtils.getCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        byte[] encrypted = cipher.doFinal(data);
+
+        CryptoUtils.importKey(keyStore, alias, key);
+        editor.putString(alias + IV_KEY_SUFFIX, Base64.encodeToString(cipher.getIV(), Base64.DEFAULT));
+        editor.putString(alias + PASSWORD_KEY_SUFFIX, Base64.encodeToString(encrypted, Base64.DEFAULT));
+        metadataStore.putCreated(metadataEditor, alias, cipher.getIV().length + encrypted.length, System.currentTimeMillis());
+    }
+
+    /**
+     * Drops any cached records for the aliases. Call once new records have been applied, as a read
+     * before then would cache the old ones.
+     */
+    void invalidateEntries(Collection<String> aliases) {
+        for (String alias : aliases) {
+            entryCache.remove(alias);
+        }
+    }
+
+    SharedPreferences.Editor editEntries() {
+        return preferences.edit();
+    }
+
+    SharedPreferences.Editor editMetadata() {
+        return metadataStore.edit();
+    }
+
+    List<String> listAliases() {
+        List<String> aliases = new ArrayList<>();
+        for (String key : preferences.getAll().keySet()) {
+            if (key.endsWith(PASSWORD_KEY_SUFFIX)) {
+                aliases.add(key.substring(0, key.length() - PASSWORD_KEY_SUFFIX.length()));
+            }
+        }
+        return aliases;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Drives an export one scan at a time on the main thread. Deriving the export key, sealing
+     * chunks and writing the stream are queued in order on {@link AsyncTask#SERIAL_EXECUTOR}, so
+     * the next entry can be scanned while the last one is written, and the writer is only ever
+     * used from one thread at a time.
+     */
+    private class VaultExport {
+        private final FragmentManager fragmentManager;
+        private final OutputStream out;
+        private final char[] passphrase;
+        private final List<String> aliases;
+        private final int operationId;
+        private final IVaultListener listener;
+
+        private final List<String> exportable = new ArrayList<>();
+        private VaultArchive.Writer writer;
+        private volatile boolean writeFailed;
+        private int index;
+        private int exported;
+
+        VaultExport(FragmentManager fragmentManager, OutputStream out, char[] passphrase, List<String> aliases,
+                    int operationId, IVaultListener listener) {
+            this.fragmentManager = fragmentManager;
+            this.out = out;
+            this.passphrase = passphrase;
+            this.aliases = aliases;
+            this.operationId = operationId;
+            this.listener = listener;
+        }
+
+        void start() {
+            new AsyncTask<Void, Void, Boolean>() {
+                @Override
+                protected Boolean doInBackground(Void... params) {
+                    // Invalidated keys can never be exported, so leave them out of the archive's count
+                    for (String alias : aliases) {
+                        if (canExport(alias))
+                            exportable.add(alias);
+                    }
+
+                    try {
+                        writer = new VaultArchive.Writer(out, passphrase, exportable.size());
+                        return true;
+                    } catch (IOException | GeneralSecurityException e) {
+                        e.printStackTrace();
+                        return false;
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(Boolean started) {
+                    if (started) {
+                        promptNext();
+                    } else {
+                        finish(false);
+                    }
+                }
+            }.execute();
+        }
+
+        private boolean canExport(String alias) {
+            try {
+                return CryptoUtils.hasKey(alias)
+                        && CryptoUtils.initCipher(CryptoUtils.getCipher(), alias, Cipher.DECRYPT_MODE, readEntry(alias).iv);
+            } catch (NoSuchPaddingException | NoSuchAlgorithmException | IOException | RuntimeException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        private void promptNext() {
+            try {
+                for (; index < exportable.size() && !writeFailed; index++) {
+                    final String alias = exportable.get(index);
+                    final Cipher cipher = CryptoUtils.getCipher();
+                    final EntryCache.Entry entry = readEntry(alias);
+
+                    if (CryptoUtils.hasKey(alias) && CryptoUtils.initCipher(cipher, alias, Cipher.DECRYPT_MODE, entry.iv)) {
+                        signCryptoWithFingerprint(fragmentManager, cipher, operationId, alias, null, new FingerprintScanDialog.IFingerprintScanListener() {
+                            @Override
+                            public void onSuccess() {
+                                exportEntry(alias, entry, cipher);
+                            }
+
+                            @Override
+                            public void onCancelled() {
+                                finish(false);
+                            }
+                        });
+                        return;
+                    }
+
+                    // The entry's key has been invalidated since the export started, so there is nothing left to export for it
+                    CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_EXPORT, CryptoTrace.OUTCOME_INVALIDATED);
+                    listener.onProgress(index + 1, exportable.size());
+                }
+                finish(!writeFailed);
+            } catch (NoSuchPaddingException | NoSuchAlgorithmException | IOException e) {
+                e.printStackTrace();
+                finish(false);
+            }
+        }
+
+        private void exportEntry(final String alias, EntryCache.Entry entry, Cipher cipher) {
+            final byte[] bytes;
+            try {
+                bytes = CryptoUtils.tryDecrypt(entry.encryptedData, cipher);
+            } catch (GeneralSecurityException e) {
+                e.printStackTrace();
+                CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_EXPORT, CryptoTrace.OUTCOME_FAILURE);
+                finish(false);
+                return;
+            }
+
+            AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!writeFailed)
+                            writer.write(alias, bytes);
+                    } catch (IOException | GeneralSecurityException e) {
+                        e.printStackTrace();
+                        CryptoTrace.record(operationId, alias, CryptoTrace.PHASE_EXPORT, CryptoTrace.OUTCOME_FAILURE);
+                        writeFailed = true;
+                    } finally {
+                        Arrays.fill(bytes, (byte) 0);
+                    }
+                }
+            });
+
+            index++;
+            exported++;
+            listener.onProgress(index, exportable.size());
+            promptNext();
+        }
+
+        /**
+         * Closes the archive after every queued write, which seals the end chunk and closes the
+         * output stream, then reports the result
+         */
+        private void finish(final boolean completed) {
+            new AsyncTask<Void, Void, Boolean>() {
+                @Override
+                protected Boolean doInBackground(Void... params) {
+                    try {
+                        if (writer != null) {
+                            writer.close();
+                        } else {
+                            out.close();
+                        }
+                        return completed && !writeFailed;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return false;
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(Boolean succeeded) {
+                    if (succeeded) {
+                        CryptoTrace.record(operationId, null, CryptoTrace.PHASE_EXPORT, CryptoTrace.OUTCOME_SUCCESS);
+                        listener.onComplete(exported);
+                    } else {
+                        CryptoTrace.record(operationId, null, CryptoTrace.PHASE_EXPORT, CryptoTrace.OUTCOME_FAILURE);
+                        listener.onFailure();
+                    }
+                }
+            }.execute();
+        }
+    }
+
+    private class VaultImportTask extends AsyncTask<Void, Integer, Integer> {
+        private final InputStream in;
+        private final char[] passphrase;
+        private final int operationId;
+        private final IVaultListener listener;
+        private final List<VaultArchive.Entry> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+
+        VaultImportTask(InputStream in, char[] passphrase, int operationId, IVaultListener listener) {
+            this.in = in;
+            this.passphrase = passphrase;
+            this.operationId = operationId;
+            this.listener = listener;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            Trace.beginSection("FingerprintUtils.importVault");
+            VaultArchive.Reader reader = null;
+            try {
+                reader = new VaultArchive.Reader(in, passphrase);
+                KeyStore keyStore = CryptoUtils.getKeyStore();
+                if (keyStore == null)
+                    return null;
+
+                int imported = 0;
+                VaultArchive.Entry entry = null;
+                do {
+                    // Read the whole batch before touching any keys, so a corrupt chunk leaves the batch unimported
+                    while (batch.size() < IMPORT_BATCH_SIZE && (entry = reader.next()) != null) {
+                        batch.add(entry);
+                    }
+                    imported += importBatch(keyStore);
+                    publishProgress(imported, reader.getEntryCount());
+                } while (entry != null);
+                return imported;
+            } catch (IOException | GeneralSecurityException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                clearBatch();
+                closeQuietly(reader != null ? reader : in);
+                Trace.endSection();
+            }
+        }
+
+        /**
+         * Imports every entry in the batch and commits their records. Each imported key has already
+         * replaced the one before it, so the records for those keys are committed even if a later
+         * key fails.
+         * @return the number of entries imported
+         */
+        private int importBatch(KeyStore keyStore) throws GeneralSecurityException {
+            SharedPreferences.Editor editor = preferences.edit();
+            SharedPreferences.Editor metadataEditor = metadataStore.edit();
+            List<String> imported = new ArrayList<>(batch.size());
+            try {
+                for (VaultArchive.Entry entry : batch) {
+                    importEntry(keyStore, editor, metadataEditor, entry.alias, entry.data);
+                    imported.add(entry.alias);
+                }
+            } finally {
+                // Committed rather than applied, so the records are on disk before the next batch replaces more keys
+                editor.commit();
+                metadataEditor.commit();
+                invalidateEntries(imported);
+                clearBatch();
+            }
+            return imported.size();
+        }
+
+        private void clearBatch() {
+            for (VaultArchive.Entry entry : batch) {
+                Arrays.fill(entry.data, (byte) 0);
+            }
+            batch.clear();
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            listener.onProgress(values[0], values[1]);
+        }
+
+        @Override
+        protected void onPostExecute(Integer imported) {
+            if (imported == null) {
+                CryptoTrace.record(operationId, null, CryptoTrace.PHASE_IMPORT, CryptoTrace.OUTCOME_FAILURE);
+                listener.onFailure();
+            } else {
+                CryptoTrace.record(operationId, null, CryptoTrace.PHASE_IMPORT, CryptoTrace.OUTCOME_SUCCESS);
+                listener.onComplete(imported);
+            }
         }
     }
 
-    private void signCryptoWithFingerprint(FragmentManager manager, Cipher cipher, FingerprintScanDialog.IFingerprintScanListener callback) {
-        FingerprintManager.CryptoObject cryptoObject = new FingerprintManager.CryptoObject(cipher);
-        FingerprintScanDialog fragment = FingerprintScanDialog.newInstance(
+    private void signCryptoWithFingerprint(FragmentManager manager, Cipher cipher, int operationId, String alias,
+                                           ICryptoAuthListener callbacks, FingerprintScanDialog.IFingerprintScanListener callback) {
+        showScanDialog(manager, new FingerprintManager.CryptoObject(cipher), operationId, alias, ICryptoAuthListener.class, callbacks, callback);
+    }
+
+    /**
+     * Shows the scan dialog for the operation, which the scan's trace events are recorded against
+     */
+    private void showScanDialog(FragmentManager manager, FingerprintManager.CryptoObject cryptoObject, int operationId, String alias,
+                                Class<?> listenerType, Object listener, FingerprintScanDialog.IFingerprintScanListener callback) {
+        CryptoTrace.setScanOperation(operationId, alias);
+        dialogHost.show(manager, cryptoObject,
                 "Scan Fingerprint",
                 "Confirm fingerprint to continue",
                 "Touch sensor",
                 "Fingerprint recognised",
                 "Fingerprint not recognised. Try again.",
+                listenerType,
+                listener,
                 callback
         );
-        fragment.setCryptoObject(cryptoObject);
-        fragment.show(manager, FingerprintScanDialog.TAG);
+    }
+
+    /**
+     * @return the listener bound to the dialog for the current encrypt or decrypt, or one which
+     * drops every result if the activity it belonged to has gone away without a replacement
+     */
+    private ICryptoAuthListener getAuthListener() {
+        ICryptoAuthListener listener = dialogHost.getListener(ICryptoAuthListener.class);
+        return listener != null ? listener : NO_AUTH_LISTENER;
+    }
+
+    /**
+     * @return the listener bound to the dialog for the current sign, or one which drops every
+     * result if the activity it belonged to has gone away without a replacement
+     */
+    private ISignListener getSignListener() {
+        ISignListener listener = dialogHost.getListener(ISignListener.class);
+        return listener != null ? listener : NO_SIGN_LISTENER;
+    }
+
+    private void notifyAuthCancelled() {
+        ICryptoCancelListener listener = dialogHost.getListener(ICryptoCancelListener.class);
+        if (listener != null) {
+            listener.onCancelled();
+        }
+    }
+
+    /**
+     * Removes the key for the alias from the keystore, along with its stored IV and encrypted data
+     */
+    public boolean deleteKey(String alias) {
+        entryCache.remove(alias);
+        preferences.edit()
+                .remove(alias + IV_KEY_SUFFIX)
+                .remove(alias + PASSWORD_KEY_SUFFIX)
+                .apply();
+        SharedPreferences.Editor metadataEditor = metadataStore.edit();
+        metadataStore.remove(metadataEditor, alias);
+        metadataEditor.apply();
+        return CryptoUtils.deleteKey(alias);
+    }
+
+    /**
+     * @return the metadata for the entry under the alias, or {@code null} if it has none.
+     * Only the metadata file is read; the keystore is never touched.
+     */
+    public EntryMetadata getEntryMetadata(String alias) {
+        return metadataStore.get(alias);
+    }
+
+    /**
+     * @return the metadata for every stored entry. Only the metadata file is read; the keystore is
+     * never touched.
+     */
+    public List<EntryMetadata> getAllEntryMetadata() {
+        return metadataStore.getAll();
+    }
+
+    /**
+     * Sets how long an entry may go unused before it expires and is purged, or {@code 0} to keep
+     * entries forever. Takes effect for every entry from the next purge.
+     */
+    public void setEntryTtl(long ttlMillis) {
+        metadataStore.setTtlMillis(ttlMillis);
+    }
+
+    /**
+     * Sets how many entries are kept before the least recently used are purged, or {@code 0} for no limit
+     */
+    public void setMaxEntries(int maxEntries) {
+        metadataStore.setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Schedules {@link #purgeExpiredEntries()} to run periodically in the background while the
+     * device is idle, replacing any previously scheduled purge
+     */
+    public void schedulePurge(long intervalMillis) {
+        JobInfo job = new JobInfo.Builder(EntryPurgeJobService.JOB_ID, new ComponentName(context, EntryPurgeJobService.class))
+                .setPeriodic(intervalMillis)
+                .setRequiresDeviceIdle(true)
+                .build();
+        context.getSystemService(JobScheduler.class).schedule(job);
+    }
+
+    public void cancelPurge() {
+        context.getSystemService(JobScheduler.class).cancel(EntryPurgeJobService.JOB_ID);
+    }
+
+    /**
+     * Deletes every expired entry, and the least recently used entries beyond the max-entry policy,
+     * removing their keys and records together. Candidates are chosen from metadata and the
+     * keystore's aliases, then deleted with a single keystore load and one write to each
+     * preferences file.
+     * Entries stored before metadata was recorded are given metadata as if created now, so they
+     * are only purged once they have gone unused for the TTL from this point. Keys and IVs left
+     * without a record by a cancelled or failed encrypt are purged too, once older than
+     * {@link #ORPHAN_GRACE_MILLIS}. If the keystore cannot be loaded, nothing is changed.
+     * This does disk and keystore work, so should not be called on the main thread.
+     * @return the number of entries purged
+     */
+    public int purgeExpiredEntries() {
+        Trace.beginSection("FingerprintUtils.purgeExpiredEntries");
+        try {
+            KeyStore keyStore = CryptoUtils.getKeyStore();
+            if (keyStore == null) {
+                // Removing records without their keys would strand the keys, so leave everything for the next purge
+                return 0;
+            }
+
+            long now = System.currentTimeMillis();
+            List<EntryMetadata> entries = metadataStore.getAll();
+            List<String> aliases = listAliases();
+
+            // Backfill metadata for entries written before it was recorded
+            Set<String> known = new HashSet<>();
+            for (EntryMetadata metadata : entries) {
+                known.add(metadata.alias);
+            }
+            SharedPreferences.Editor metadataEditor = metadataStore.edit();
+            for (String alias : aliases) {
+                if (!known.contains(alias)) {
+                    int size = 0;
+                    try {
+                        size = readIv(alias).length + readEncryptedPassword(alias).length;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    metadataStore.putCreated(metadataEditor, alias, size, now);
+                }
+            }
+
+            long ttlMillis = metadataStore.getTtlMillis();
+            Set<String> purged = findOrphans(keyStore, new HashSet<>(aliases), now);
+            List<EntryMetadata> live = new ArrayList<>();
+            for (EntryMetadata metadata : entries) {
+                if (metadata.isExpired(now, ttlMillis)) {
+                    purged.add(metadata.alias);
+                } else {
+                    live.add(metadata);
+                }
+            }
+
+            int maxEntries = metadataStore.getMaxEntries();
+            if (maxEntries > 0 && live.size() > maxEntries) {
+                Collections.sort(live, new Comparator<EntryMetadata>() {
+                    @Override
+                    public int compare(EntryMetadata lhs, EntryMetadata rhs) {
+                        return lhs.lastUsedAt < rhs.lastUsedAt ? -1 : (lhs.lastUsedAt == rhs.lastUsedAt ? 0 : 1);
+                    }
+                });
+                for (EntryMetadata metadata : live.subList(0, live.size() - maxEntries)) {
+                    purged.add(metadata.alias);
+                }
+            }
+
+            if (!purged.isEmpty()) {
+                SharedPreferences.Editor editor = preferences.edit();
+                for (String alias : purged) {
+                    editor.remove(alias + IV_KEY_SUFFIX);
+                    editor.remove(alias + PASSWORD_KEY_SUFFIX);
+                    metadataStore.remove(metadataEditor, alias);
+                    try {
+                        keyStore.deleteEntry(alias);
+                    } catch (KeyStoreException e) {
+                        e.printStackTrace();
+                    }
+                }
+                editor.apply();
+                invalidateEntries(purged);
+            }
+            metadataEditor.apply();
+            return purged.size();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * @return aliases holding a symmetric key or an IV but no encrypted data, other than keys
+     * younger than {@link #ORPHAN_GRACE_MILLIS}
+     */
+    private Set<String> findOrphans(KeyStore keyStore, Set<String> recorded, long now) {
+        Set<String> orphans = new HashSet<>();
+        for (String key : preferences.getAll().keySet()) {
+            if (key.endsWith(IV_KEY_SUFFIX)) {
+                orphans.add(key.substring(0, key.length() - IV_KEY_SUFFIX.length()));
+            }
+        }
+
+        try {
+            for (String alias : Collections.list(keyStore.aliases())) {
+                // Signing keys never have records, so only symmetric keys can be orphaned
+                if (keyStore.entryInstanceOf(alias, KeyStore.SecretKeyEntry.class)) {
+                    orphans.add(alias);
+                }
+            }
+            orphans.removeAll(recorded);
+
+            Iterator<String> iterator = orphans.iterator();
+            while (iterator.hasNext()) {
+                String alias = iterator.next();
+                Date created = keyStore.containsAlias(alias) ? keyStore.getCreationDate(alias) : null;
+                if (created != null && now - created.getTime() < ORPHAN_GRACE_MILLIS) {
+                    iterator.remove();
+                }
+            }
+            return orphans;
+        } catch (KeyStoreException e) {
+            e.printStackTrace();
+            // Without the keystore's aliases an encrypt still waiting on its scan cannot be told apart, so leave them all
+            return new HashSet<>();
+        }
+    }
+
+    private EntryCache.Entry readEntry(String alias) throws IOException {
+        EntryCache.Entry entry = entryCache.get(alias);
+        if (entry == null) {
+            entry = new EntryCache.Entry(readIv(alias), readEncryptedPassword(alias));
+            entryCache.put(alias, entry);
+        }
+        return entry;
     }
 
     private void writeIv(String alias, byte[] iv) throws IOException {
+        entryCache.remove(alias);
         SharedPreferences.Editor editor = preferences.edit();
-        editor.putString(alias + "encryptionIv", Base64.encodeToString(iv, Base64.DEFAULT));
+        editor.putString(alias + IV_KEY_SUFFIX, Base64.encodeToString(iv, Base64.DEFAULT));
         editor.apply();
     }
 
     private byte[] readIv(String alias) throws IOException {
-        String base64EncryptionIv = preferences.getString(alias + "encryptionIv", null);
+        String base64EncryptionIv = preferences.getString(alias + IV_KEY_SUFFIX, null);
         return Base64.decode(base64EncryptionIv, Base64.DEFAULT);
     }
 
     private void writeEncryptedPassword(String alias, byte[] passwordBytes) throws IOException {
+        entryCache.remove(alias);
         SharedPreferences.Editor editor = preferences.edit();
-        editor.putString(alias + "password", Base64.encodeToString(passwordBytes, Base64.DEFAULT));
+        editor.putString(alias + PASSWORD_KEY_SUFFIX, Base64.encodeToString(passwordBytes, Base64.DEFAULT));
         editor.apply();
     }
 
     private byte[] readEncryptedPassword(String alias) throws IOException {
-        String base64EncryptedPassword = preferences.getString(alias + "password", null);
+        String base64EncryptedPassword = preferences.getString(alias + PASSWORD_KEY_SUFFIX, null);
         return Base64.decode(base64EncryptedPassword, Base64.DEFAULT);
     }
 
@@ -189,19 +1015,41 @@ public class FingerprintUtils {
         void onKeystoreInvalidated();
     }
 
+    public interface ISignListener {
+        void onSigned(String signature);
+        void onFailure();
+        void onKeystoreInvalidated();
+    }
+
+    /**
+     * Optionally implemented alongside {@link ICryptoAuthListener} or {@link ISignListener} to hear
+     * when the user dismisses the scan dialog without scanning
+     */
+    public interface ICryptoCancelListener {
+        void onCancelled();
+    }
+
+    public interface IVaultListener {
+        void onProgress(int completed, int total);
+        void onComplete(int count);
+        void onFailure();
+    }
+
     public interface IFingerprintListener {
         void onScanStarted();
         void onScanFinished(boolean isRecognised);
         void onError(boolean isRecoverable, String message);
     }
 
-    public static class FingerprintHelper extends FingerprintManager.AuthenticationCallback {
+    /**
+     * Runs fingerprint scans for a dialog. Every scan gets its own callback and
+     * {@link CancellationSignal}, so events from a scan which has since been stopped or replaced,
+     * such as the cancellation error it reports when stopped, never reach the dialog.
+     */
+    public static class FingerprintHelper {
         private final IFingerprintListener callback;
         private final FingerprintManager fingerprintManager;
-        private CancellationSignal cancellationSignal;
-
-        @VisibleForTesting
-        boolean mSelfCancelled;
+        private Session session;
 
         public FingerprintHelper(IFingerprintListener callback, Context context) {
             this.callback = callback;
@@ -211,40 +1059,67 @@ public class FingerprintUtils {
         @RequiresPermission(USE_FINGERPRINT)
         @SuppressWarnings("all")
         public void startListening(FingerprintManager.CryptoObject cryptoObject) {
-            cancellationSignal = new CancellationSignal();
-            mSelfCancelled = false;
-            fingerprintManager.authenticate(cryptoObject, cancellationSignal, 0, this, null);
+            session = new Session(CryptoTrace.getScanOperation());
+            fingerprintManager.authenticate(cryptoObject, session.cancellationSignal, 0, session, null);
+            CryptoTrace.record(session.operation, CryptoTrace.PHASE_SCAN_STARTED, CryptoTrace.OUTCOME_STARTED, 0);
             callback.onScanStarted();
         }
 
         public void stopListening() {
-            if (cancellationSignal != null) {
-                mSelfCancelled = true;
-                cancellationSignal.cancel();
-                cancellationSignal = null;
+            if (session != null) {
+                session.cancellationSignal.cancel();
+                session = null;
             }
         }
 
-        @Override
-        public void onAuthenticationError(int errMsgId, CharSequence errString) {
-            if (!mSelfCancelled) {
+        private class Session extends FingerprintManager.AuthenticationCallback {
+            final CancellationSignal cancellationSignal = new CancellationSignal();
+            // The operation this scan was started for, so its events are never recorded against a later one
+            final long operation;
+
+            Session(long operation) {
+                this.operation = operation;
+            }
+
+            private boolean isCurrent() {
+                return session == this;
+            }
+
+            @Override
+            public void onAuthenticationError(int errMsgId, CharSequence errString) {
+                if (!isCurrent())
+                    return;
+
+                CryptoTrace.record(operation, CryptoTrace.PHASE_SCAN_ERROR, CryptoTrace.OUTCOME_FAILURE, errMsgId);
                 callback.onError(false, errString.toString());
             }
-        }
 
-        @Override
-        public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
-            callback.onError(true, helpString.toString());
-        }
+            @Override
+            public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
+                if (!isCurrent())
+                    return;
 
-        @Override
-        public void onAuthenticationFailed() {
-            callback.onScanFinished(false);
-        }
+                CryptoTrace.record(operation, CryptoTrace.PHASE_SCAN_HELP, CryptoTrace.OUTCOME_RETRY, helpMsgId);
+                callback.onError(true, helpString.toString());
+            }
 
-        @Override
-        public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
-            callback.onScanFinished(true);
+            @Override
+            public void onAuthenticationFailed() {
+                if (!isCurrent())
+                    return;
+
+                CryptoTrace.record(operation, CryptoTrace.PHASE_SCAN_FAILED, CryptoTrace.OUTCOME_RETRY, 0);
+                callback.onScanFinished(false);
+            }
+
+            @Override
+            public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
+                if (!isCurrent())
+                    return;
+
+                CryptoTrace.record(operation, CryptoTrace.PHASE_SCAN_SUCCEEDED, CryptoTrace.OUTCOME_SUCCESS, 0);
+                callback.onScanFinished(true);
+            }
         }
     }
 }
@@ -0,0 +1,283 @@
+package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A streaming, chunked archive of decrypted vault entries, re-encrypted under an export key
+ * derived from a user-supplied passphrase. Used to move entries between devices or profiles.
+ * <p>
+ * The archive is a header of magic, version, entry count, PBKDF2 iteration count and salt,
+ * followed by a run of chunks. Each chunk holds its record count, ciphertext length, GCM nonce
+ * and ciphertext, and is authenticated with its index so chunks cannot be reordered. A chunk with
+ * a record count of zero marks the end of the archive, so a truncated archive is detected.
+ * Inside a chunk, each record is the alias followed by the length and bytes of its data.
+ * <p>
+ * Only one chunk is ever held in memory, so archives of any number of entries can be written
+ * and read in bounded memory.
+ */
+public class VaultArchive {
+    private static final int MAGIC = 0x46505641; // "FPVA"
+    private static final int VERSION = 1;
+
+    private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int KEY_DERIVATION_ITERATIONS = 10000;
+    /**
+     * Most iterations a reader accepts, so a crafted header cannot stall the import deriving a key
+     */
+    private static final int MAX_KEY_DERIVATION_ITERATIONS = 1000000;
+    private static final int KEY_LENGTH_BITS = 256;
+    private static final int SALT_LENGTH = 16;
+
+    private static final String CHUNK_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    /**
+     * Plaintext size at which a chunk is sealed and written out
+     */
+    public static final int CHUNK_SIZE_BYTES = 64 * 1024;
+
+    /**
+     * Largest chunk a reader accepts, so a corrupt length cannot exhaust memory
+     */
+    private static final int MAX_CHUNK_BYTES = CHUNK_SIZE_BYTES * 4;
+
+    /**
+     * Largest record a writer accepts, so that a chunk holding only that record still fits within
+     * {@link #MAX_CHUNK_BYTES} once sealed
+     */
+    public static final int MAX_RECORD_BYTES = MAX_CHUNK_BYTES - TAG_LENGTH_BITS / 8;
+
+    private static SecretKey deriveKey(char[] passphrase, byte[] salt, int iterations) throws GeneralSecurityException {
+        KeySpec spec = new PBEKeySpec(passphrase, salt, iterations, KEY_LENGTH_BITS);
+        byte[] keyBytes = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM).generateSecret(spec).getEncoded();
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final SecretKey key;
+        private final SecureRandom random = new SecureRandom();
+        private final ByteArrayOutputStream chunkBuffer = new ByteArrayOutputStream(CHUNK_SIZE_BYTES);
+        private final DataOutputStream chunk = new DataOutputStream(chunkBuffer);
+        private int chunkRecords;
+        private int chunkIndex;
+        private boolean closed;
+
+        /**
+         * Writes the archive header. The entry count is recorded so readers can report progress.
+         */
+        public Writer(OutputStream out, char[] passphrase, int entryCount) throws IOException, GeneralSecurityException {
+            this.out = new DataOutputStream(out);
+
+            byte[] salt = new byte[SALT_LENGTH];
+            random.nextBytes(salt);
+            key = deriveKey(passphrase, salt, KEY_DERIVATION_ITERATIONS);
+
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeInt(entryCount);
+            this.out.writeInt(KEY_DERIVATION_ITERATIONS);
+            this.out.write(salt);
+        }
+
+        /**
+         * Appends a record, sealing the buffered chunk first if the record would take it past
+         * {@link #CHUNK_SIZE_BYTES}, so no chunk grows beyond what a reader accepts
+         * @throws IOException if the record is larger than {@link #MAX_RECORD_BYTES}
+         */
+        public void write(String alias, byte[] data) throws IOException, GeneralSecurityException {
+            long recordSize = 2 + utfLength(alias) + 4 + (long) data.length;
+            if (recordSize > MAX_RECORD_BYTES)
+                throw new IOException("Vault entry too large to archive: " + alias);
+            if (chunkRecords > 0 && chunkBuffer.size() + recordSize > CHUNK_SIZE_BYTES)
+                flushChunk();
+
+            chunk.writeUTF(alias);
+            chunk.writeInt(data.length);
+            chunk.write(data);
+            chunkRecords++;
+
+            if (chunkBuffer.size() >= CHUNK_SIZE_BYTES)
+                flushChunk();
+        }
+
+        private void flushChunk() throws IOException, GeneralSecurityException {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            random.nextBytes(nonce);
+
+            Cipher cipher = Cipher.getInstance(CHUNK_TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+            cipher.updateAAD(chunkAad(chunkIndex, chunkRecords));
+            byte[] sealed = cipher.doFinal(chunkBuffer.toByteArray());
+
+            out.writeInt(chunkRecords);
+            out.writeInt(sealed.length);
+            out.write(nonce);
+            out.write(sealed);
+
+            chunkBuffer.reset();
+            chunkRecords = 0;
+            chunkIndex++;
+        }
+
+        /**
+         * Writes any buffered records and the end-of-archive marker, then closes the stream
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+
+            try {
+                if (chunkRecords > 0)
+                    flushChunk();
+                // The empty end chunk is sealed like any other so truncation is detected
+                flushChunk();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to seal vault archive", e);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final SecretKey key;
+        private final int entryCount;
+        private DataInputStream chunk;
+        private int chunkRecordsRemaining;
+        private int chunkIndex;
+        private boolean finished;
+
+        /**
+         * Reads the archive header and derives the export key from the passphrase
+         */
+        public Reader(InputStream in, char[] passphrase) throws IOException, GeneralSecurityException {
+            this.in = new DataInputStream(in);
+
+            if (this.in.readInt() != MAGIC)
+                throw new IOException("Not a vault archive");
+            if (this.in.readByte() != VERSION)
+                throw new IOException("Unsupported vault archive version");
+
+            entryCount = this.in.readInt();
+            int iterations = this.in.readInt();
+            if (entryCount < 0 || iterations <= 0 || iterations > MAX_KEY_DERIVATION_ITERATIONS)
+                throw new IOException("Corrupt vault archive header");
+
+            byte[] salt = new byte[SALT_LENGTH];
+            this.in.readFully(salt);
+            key = deriveKey(passphrase, salt, iterations);
+        }
+
+        /**
+         * @return the number of entries the archive was written with
+         */
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        /**
+         * @return the next entry, or {@code null} at the end of the archive
+         * @throws GeneralSecurityException if the passphrase is wrong or the archive was tampered with
+         */
+        public Entry next() throws IOException, GeneralSecurityException {
+            while (chunkRecordsRemaining == 0) {
+                if (finished || !readChunk())
+                    return null;
+            }
+
+            String alias = chunk.readUTF();
+            byte[] data = new byte[chunk.readInt()];
+            chunk.readFully(data);
+            chunkRecordsRemaining--;
+            return new Entry(alias, data);
+        }
+
+        private boolean readChunk() throws IOException, GeneralSecurityException {
+            int records = in.readInt();
+            int length = in.readInt();
+            if (records < 0 || length < 0 || length > MAX_CHUNK_BYTES)
+                throw new IOException("Corrupt vault archive chunk");
+
+            byte[] nonce = new byte[NONCE_LENGTH];
+            in.readFully(nonce);
+            byte[] sealed = new byte[length];
+            in.readFully(sealed);
+
+            Cipher cipher = Cipher.getInstance(CHUNK_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+            cipher.updateAAD(chunkAad(chunkIndex, records));
+            byte[] plain = cipher.doFinal(sealed);
+            chunkIndex++;
+
+            if (records == 0) {
+                finished = true;
+                return false;
+            }
+
+            chunk = new DataInputStream(new ByteArrayInputStream(plain));
+            chunkRecordsRemaining = records;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the length of the string in the modified UTF-8 written by {@link DataOutputStream#writeUTF}
+     */
+    private static int utfLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F)
+                length += 1;
+            else if (c <= 0x07FF)
+                length += 2;
+            else
+                length += 3;
+        }
+        return length;
+    }
+
+    private static byte[] chunkAad(int chunkIndex, int records) {
+        return new byte[] {
+                (byte) (chunkIndex >>> 24), (byte) (chunkIndex >>> 16), (byte) (chunkIndex >>> 8), (byte) chunkIndex,
+                (byte) (records >>> 24), (byte) (records >>> 16), (byte) (records >>> 8), (byte) records
+        };
+    }
+
+    public static class Entry {
+        public final String alias;
+        public final byte[] data;
+
+        public Entry(String alias, byte[] data) {
+            this.alias = alias;
+            this.data = data;
+        }
+    }
+}
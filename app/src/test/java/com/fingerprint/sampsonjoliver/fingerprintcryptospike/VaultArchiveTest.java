@@ -0,0 +1,154 @@
+package com.fingerprint.sampsonjoliver.fingerprintcryptospike;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VaultArchiveTest {
+    private static final char[] PASSPHRASE = "correct horse battery staple".toCharArray();
+
+    // Magic, version, entry count, iterations and salt
+    private static final int HEADER_LENGTH = 4 + 1 + 4 + 4 + 16;
+    // Record count, length and nonce ahead of each chunk's ciphertext
+    private static final int CHUNK_PREFIX_LENGTH = 4 + 4 + 12;
+    // The end chunk seals no records, so is only its prefix and GCM tag
+    private static final int END_CHUNK_LENGTH = CHUNK_PREFIX_LENGTH + 16;
+
+    @Test
+    public void roundTrip_returnsEveryEntryInOrder() throws Exception {
+        byte[] large = filled(VaultArchive.CHUNK_SIZE_BYTES + 1, (byte) 7);
+        byte[] archive = write(
+                new VaultArchive.Entry("first", "one".getBytes("UTF-8")),
+                new VaultArchive.Entry("large", large),
+                new VaultArchive.Entry("last", new byte[0]));
+
+        VaultArchive.Reader reader = new VaultArchive.Reader(new ByteArrayInputStream(archive), PASSPHRASE);
+        assertEquals(3, reader.getEntryCount());
+
+        VaultArchive.Entry entry = reader.next();
+        assertEquals("first", entry.alias);
+        assertArrayEquals("one".getBytes("UTF-8"), entry.data);
+
+        entry = reader.next();
+        assertEquals("large", entry.alias);
+        assertArrayEquals(large, entry.data);
+
+        entry = reader.next();
+        assertEquals("last", entry.alias);
+        assertEquals(0, entry.data.length);
+
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void wrongPassphrase_failsAuthentication() throws Exception {
+        byte[] archive = write(new VaultArchive.Entry("alias", "secret".getBytes("UTF-8")));
+
+        VaultArchive.Reader reader = new VaultArchive.Reader(new ByteArrayInputStream(archive), "wrong".toCharArray());
+        reader.next();
+    }
+
+    @Test(expected = EOFException.class)
+    public void missingEndChunk_isDetected() throws Exception {
+        byte[] archive = write(new VaultArchive.Entry("alias", "secret".getBytes("UTF-8")));
+        byte[] truncated = Arrays.copyOf(archive, archive.length - END_CHUNK_LENGTH);
+
+        VaultArchive.Reader reader = new VaultArchive.Reader(new ByteArrayInputStream(truncated), PASSPHRASE);
+        assertEquals("alias", reader.next().alias);
+        reader.next();
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void reorderedChunks_failAuthentication() throws Exception {
+        // Each entry fills a chunk on its own, so the archive holds two data chunks and the end chunk
+        byte[] archive = write(
+                new VaultArchive.Entry("first", filled(VaultArchive.CHUNK_SIZE_BYTES, (byte) 1)),
+                new VaultArchive.Entry("second", filled(VaultArchive.CHUNK_SIZE_BYTES, (byte) 2)));
+        List<byte[]> chunks = splitChunks(archive);
+        assertEquals(3, chunks.size());
+
+        ByteArrayOutputStream reordered = new ByteArrayOutputStream();
+        reordered.write(archive, 0, HEADER_LENGTH);
+        reordered.write(chunks.get(1));
+        reordered.write(chunks.get(0));
+        reordered.write(chunks.get(2));
+
+        VaultArchive.Reader reader = new VaultArchive.Reader(new ByteArrayInputStream(reordered.toByteArray()), PASSPHRASE);
+        reader.next();
+    }
+
+    @Test(expected = IOException.class)
+    public void excessiveIterations_areRejected() throws Exception {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(0x46505641);
+        out.writeByte(1);
+        out.writeInt(1);
+        out.writeInt(Integer.MAX_VALUE);
+        out.write(new byte[16]);
+
+        new VaultArchive.Reader(new ByteArrayInputStream(header.toByteArray()), PASSPHRASE);
+    }
+
+    @Test
+    public void entryAfterPartialChunk_startsNewChunk() throws Exception {
+        // Appended to the first entry's chunk, the second would seal a chunk larger than a reader accepts
+        byte[] small = filled(60 * 1024, (byte) 3);
+        byte[] large = filled(200 * 1024, (byte) 4);
+        byte[] archive = write(
+                new VaultArchive.Entry("small", small),
+                new VaultArchive.Entry("large", large));
+        assertEquals(3, splitChunks(archive).size());
+
+        VaultArchive.Reader reader = new VaultArchive.Reader(new ByteArrayInputStream(archive), PASSPHRASE);
+        assertArrayEquals(small, reader.next().data);
+        assertArrayEquals(large, reader.next().data);
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedEntry_isRejected() throws Exception {
+        write(new VaultArchive.Entry("alias", new byte[VaultArchive.MAX_RECORD_BYTES]));
+    }
+
+    private static byte[] write(VaultArchive.Entry... entries) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VaultArchive.Writer writer = new VaultArchive.Writer(out, PASSPHRASE, entries.length);
+        for (VaultArchive.Entry entry : entries) {
+            writer.write(entry.alias, entry.data);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static List<byte[]> splitChunks(byte[] archive) {
+        List<byte[]> chunks = new ArrayList<>();
+        int offset = HEADER_LENGTH;
+        while (offset < archive.length) {
+            int length = ByteBuffer.wrap(archive, offset + 4, 4).getInt();
+            int end = offset + CHUNK_PREFIX_LENGTH + length;
+            chunks.add(Arrays.copyOfRange(archive, offset, end));
+            offset = end;
+        }
+        return chunks;
+    }
+
+    private static byte[] filled(int length, byte value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+}